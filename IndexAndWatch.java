@@ -1,49 +1,145 @@
 package pl.edu.mimuw.mm408932;
 
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.LockObtainFailedException;
 
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 
+/**
+ * Without arguments watches all indexed directories. With arguments runs --purge, --add &lt;dir&gt;,
+ * --rm &lt;dir&gt;, --reindex and --list in order; --watch keeps watching afterwards, and directories
+ * added that way are watched too. --bulk-bytes &lt;bytes/s&gt; and --bulk-files &lt;files/s&gt; throttle
+ * the bulk indexing.
+ *
+ * The Index is only locked for writing while commands that change it run, and by a watcher only
+ * while it handles an event, so commands can still be run from another shell next to a watcher.
+ * Watcher updates take priority over bulk indexing only within one process, i.e. with --watch.
+ */
 public class IndexAndWatch {
 
+    // open only while writing commands run; closed by main or by the shutdown hook, whichever is first
+    private static IndexWriter writer = null;
+
     public static void main(String[] args) {
 
-        try (IndexWriter writer = IndexFiles.createWriter()) {
+        boolean watch = (args.length == 0);
+        boolean writes = false;
+        long bulkBytesPerSec = 0;
+        long bulkFilesPerSec = 0;
+
+        for (int i = 0; i < args.length; i++) {
+            if ("--watch".equals(args[i])) {
+                watch = true;
+            } else if ("--bulk-bytes".equals(args[i])) {
+                bulkBytesPerSec = Long.parseLong(args[i + 1]);
+                i++;
+            } else if ("--bulk-files".equals(args[i])) {
+                bulkFilesPerSec = Long.parseLong(args[i + 1]);
+                i++;
+            } else if ("--purge".equals(args[i]) || "--add".equals(args[i]) || "--rm".equals(args[i])
+                    || "--reindex".equals(args[i])) {
+                writes = true;
+            }
+        }
+
+        if (writes) {
+            try {
+                writer = IndexFiles.createWriter();
+            }
+            catch (LockObtainFailedException e) {
+                System.out.println("The Index is being changed by another process, please try again later.");
+                return;
+            }
+            catch (IOException e) {
+                System.out.println("Cannot open the writer.");
+                return;
+            }
+        }
+        IndexWriter bulkWriter = writer;
+
+        IndexScheduler scheduler = new IndexScheduler(bulkBytesPerSec, bulkFilesPerSec);
+        scheduler.start();
+
+        // the watcher runs next to the bulk commands, its updates jump ahead of them in the scheduler
+        WatchDir watcher = null;
+        if (watch) {
+            System.out.println("\nI'll register all directories in Index to keep an eye on them.");
+
+            ArrayList<String> indexedDirs = IndexFiles.findAllDirectories();
+            watcher = WatchDir.watchIndex(indexedDirs, scheduler, bulkWriter);
+        }
 
+        final WatchDir watcherToStop = watcher;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown(watcherToStop, scheduler)));
+
+        try {
             for (int i = 0; i < args.length; i++) {
 
                 if ("--purge".equals(args[i])) {
-                    IndexFiles.deleteIndex(writer);
+                    IndexFiles.deleteIndex(bulkWriter);
                 } else if ("--add".equals(args[i])) {
                     String docsPath = args[i + 1];
                     final Path docDir = Paths.get(docsPath);
                     System.out.println("I'm indexing the directory: " + docsPath);
-                    IndexFiles.indexDirectory(writer, docDir, true);
+                    IndexFiles.indexDirectory(scheduler, bulkWriter, docDir, true, IndexScheduler.Lane.BULK);
+                    if (watcher != null)
+                        watcher.watchDirectory(docDir);
                     i++;
                 } else if ("--rm".equals(args[i])) {
                     String deleteDirectory = args[i + 1];
                     final Path deletePath = Paths.get(deleteDirectory);
-                    IndexFiles.deleteDocs(writer, deletePath, true);
+                    IndexFiles.deleteDocs(bulkWriter, deletePath, true);
                     i++;
                 } else if ("--reindex".equals(args[i])) {
-                    IndexFiles.reindex(writer);
+                    IndexFiles.reindex(scheduler, bulkWriter);
                 } else if ("--list".equals(args[i])) {
                     IndexFiles.list();
+                } else if ("--bulk-bytes".equals(args[i]) || "--bulk-files".equals(args[i])) {
+                    i++;
                 }
             }
+
+            // from now on the watcher opens a writer per event, so the Index isn't locked in between
+            scheduler.awaitLane(IndexScheduler.Lane.BULK);
+            if (watcher != null)
+                watcher.releaseWriter();
+            closeWriter();
         }
-        catch (IOException e) {
-            System.out.println("Cannot open the writer.");
+        catch (AlreadyClosedException e) {
+            // the shutdown hook has already saved the Index and the process is exiting
+            return;
         }
 
-        if (args.length == 0) {
-            System.out.println("\nI'll register all directories in Index to keep an eye on them.");
+        if (watcher != null)
+            watcher.awaitTermination();
+        shutdown(watcher, scheduler);
+    }
 
-            ArrayList<String> indexedDirs = IndexFiles.findAllDirectories();
-            WatchDir.watchIndex(indexedDirs);
+    // Runs at the end of main and from the shutdown hook on Ctrl-C. The watcher stops first, then the
+    // scheduler finishes its current file, and only then the writer is closed, which saves the Index.
+    private static synchronized void shutdown(WatchDir watcher, IndexScheduler scheduler) {
+
+        if (watcher != null)
+            watcher.stop();
+        scheduler.shutdown();
+        closeWriter();
+    }
+
+    private static synchronized void closeWriter() {
+
+        if (writer == null)
+            return;
+
+        try {
+            writer.close();
+        }
+        catch (IOException e) {
+            System.out.println("Cannot save changes to the Index.");
         }
+        writer = null;
     }
 }
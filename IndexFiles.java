@@ -16,11 +16,15 @@ import org.apache.lucene.analysis.pl.PolishAnalyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.*;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
 
 import org.apache.tika.exception.TikaException;
 import org.apache.tika.langdetect.OptimaizeLangDetector;
@@ -34,7 +38,8 @@ public class IndexFiles {
 
     private IndexFiles() {}
 
-    public static void indexDirectory (IndexWriter writer, Path dirPath, boolean newDir) {
+    public static void indexDirectory (IndexScheduler scheduler, IndexWriter writer, Path dirPath,
+                                       boolean newDir, IndexScheduler.Lane lane) {
 
         if (!Files.isReadable(dirPath)) {
             System.out.println("Document directory '" +dirPath.toAbsolutePath()+
@@ -57,7 +62,7 @@ public class IndexFiles {
         if (Files.isDirectory(dirPath) && newDir)
             addInfoAboutDir(writer, dirPath, true);
 
-        indexDocs(writer, dirPath, true);
+        indexDocs(scheduler, writer, dirPath, true, lane);
     }
 
     private static boolean isThisDirInIndex (String dirPath) throws IOException {
@@ -81,25 +86,29 @@ public class IndexFiles {
     }
 
 
-    private static void indexDocs(IndexWriter writer, Path path, boolean newDir) {
+    private static void indexDocs(IndexScheduler scheduler, IndexWriter writer, Path path, boolean newDir,
+                                  IndexScheduler.Lane lane) {
 
         try {
             if (Files.isDirectory(path)) {
                 Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
                     @Override
                     public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
-                        indexDoc(writer, file, newDir);
+                        scheduler.submit(lane, attrs.size(), () -> indexDoc(writer, file, newDir));
                         return FileVisitResult.CONTINUE;
                     }
                 });
             } else {
-                indexDoc(writer, path, newDir);
+                long size = Files.isRegularFile(path) ? Files.size(path) : 0;
+                scheduler.submit(lane, size, () -> indexDoc(writer, path, newDir));
             }
         }
         catch (IOException e) {
             System.out.println("The problem with looking for files in directory or subdirectories has occured." +
                     " It's possible that part of them isn't indexed.");
         }
+
+        scheduler.awaitLane(lane);
     }
 
     private static String parseToPlainText(Path file) throws  IOException, SAXException, TikaException {
@@ -143,6 +152,7 @@ public class IndexFiles {
                 Document doc = new Document();
                 doc.add(new StringField("path", file.toString(), Field.Store.YES));
                 doc.add(new StringField("name", file.toFile().getName(), Field.Store.YES));
+                addMetadata(doc, file, lang);
                 if (lang.equals("pl"))
                     doc.add(new TextField("PolishText", converted, Field.Store.YES));
                 else
@@ -162,13 +172,40 @@ public class IndexFiles {
         }
     }
 
+    // doc values let SearchFiles list, sort and filter results without loading stored documents
+    private static void addMetadata(Document doc, Path file, String lang) throws IOException {
+
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        long mtime = attrs.lastModifiedTime().toMillis();
+        String ext = extension(file);
+
+        doc.add(new SortedDocValuesField("path", new BytesRef(file.toString())));
+        doc.add(new StringField("ext", ext, Field.Store.NO));
+        doc.add(new SortedDocValuesField("ext", new BytesRef(ext)));
+        doc.add(new LongPoint("size", attrs.size()));
+        doc.add(new NumericDocValuesField("size", attrs.size()));
+        doc.add(new LongPoint("mtime", mtime));
+        doc.add(new NumericDocValuesField("mtime", mtime));
+        doc.add(new StringField("lang", lang, Field.Store.NO));
+        doc.add(new SortedDocValuesField("lang", new BytesRef(lang)));
+    }
+
+    private static String extension(Path file) {
+
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        if (dot <= 0 || dot == name.length() - 1)
+            return "";
+        return name.substring(dot + 1).toLowerCase();
+    }
+
     private static void addInfoAboutDir (IndexWriter writer, Path path, boolean newDir){
 
         Document doc = new Document();
         doc.add(new StringField("dirName", path.toString(), Field.Store.YES));
 
         try {
-            writer.addDocument(doc);
+            writer.updateDocument(new Term("dirName", path.toString()), doc);
         } catch (IOException e) {
             System.out.println("Cannot add single document to the Index.");
         }
@@ -216,10 +253,10 @@ public class IndexFiles {
         reader.close();
     }
 
-    public static void updateDoc(IndexWriter writer, Path path) {
+    public static void updateDoc(IndexScheduler scheduler, IndexWriter writer, Path path) {
 
         deleteDocs(writer, path, false);
-        indexDirectory(writer, path, false);
+        indexDirectory(scheduler, writer, path, false, IndexScheduler.Lane.INTERACTIVE);
     }
 
     public static ArrayList<String> findAllDirectories() {
@@ -263,28 +300,44 @@ public class IndexFiles {
         }
     }
 
-    public static void reindex (IndexWriter writer) {
+    // Documents are replaced one by one instead of emptying the Index first, so a commit made
+    // by the watcher in the middle of a reindex never exposes a half-empty Index.
+    public static void reindex (IndexScheduler scheduler, IndexWriter writer) {
 
         ArrayList<String> indexedDirs = findAllDirectories();
-        boolean deleted = false;
 
         try {
-            writer.deleteAll();
-            deleted = true;
+            deleteMissingDocs(writer);
         }
         catch (IOException e) {
-            System.out.println("Cannot delete the Index, and as a consequence cannot reindex.");
+            System.out.println("Cannot remove files that no longer exist from the Index.");
+        }
+
+        for (String dirPath: indexedDirs) {
+            System.out.println("Reindexing the directory: " + dirPath);
+            final Path path = Paths.get(dirPath);
+
+            addInfoAboutDir(writer, path, false);
+            indexDocs(scheduler, writer, path, false, IndexScheduler.Lane.BULK);
         }
+    }
+
+    private static void deleteMissingDocs (IndexWriter writer) throws IOException {
+
+        String index = System.getProperty("user.home") + "/.index";
+        IndexReader reader = DirectoryReader.open(FSDirectory.open(Paths.get(index)));
 
-        if (deleted) {
-            for (String dirPath: indexedDirs) {
-                System.out.println("Reindexing the directory: " + dirPath);
-                final Path path = Paths.get(dirPath);
+        for (int i = 0; i < reader.maxDoc(); i++) {
 
-                addInfoAboutDir(writer, path, false);
-                indexDocs(writer, path, false);
+            Document doc = reader.document(i);
+            String docPath = doc.get("path");
+
+            if (docPath != null && !Files.isRegularFile(Paths.get(docPath), LinkOption.NOFOLLOW_LINKS)) {
+                writer.deleteDocuments(new Term("path", docPath));
+                System.out.println("\tdeleting " + docPath);
             }
         }
+        reader.close();
     }
 
     public static void deleteIndex (IndexWriter writer) {
@@ -0,0 +1,279 @@
+package pl.edu.mimuw.mm408932;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class IndexScheduler {
+
+    private static Logger logger = LoggerFactory.getLogger(IndexScheduler.class);
+
+    public enum Lane { INTERACTIVE, BULK }
+
+    // bulk walk blocks when this many files are waiting, so a huge directory isn't queued at once
+    private static final int BULK_QUEUE_CAPACITY = 1000;
+    // bulk lane stays paused this long after the last watcher update
+    private static final long INTERACTIVE_GRACE_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final long REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private static class Task {
+        final Lane lane;
+        final long bytes;
+        final Runnable action;
+        final long enqueued = System.nanoTime();
+
+        Task(Lane lane, long bytes, Runnable action) {
+            this.lane = lane;
+            this.bytes = bytes;
+            this.action = action;
+        }
+    }
+
+    private static class LaneStats {
+        long completed;
+        long totalLatencyNanos;
+        long maxLatencyNanos;
+        long bytes;
+
+        void record(Task task) {
+            long latency = System.nanoTime() - task.enqueued;
+            completed++;
+            totalLatencyNanos += latency;
+            maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+            bytes += task.bytes;
+        }
+    }
+
+    private final long bulkBytesPerSec;
+    private final long bulkFilesPerSec;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final ArrayDeque<Task> interactive = new ArrayDeque<>();
+    private final ArrayDeque<Task> bulk = new ArrayDeque<>();
+    private final LaneStats interactiveStats = new LaneStats();
+    private final LaneStats bulkStats = new LaneStats();
+
+    private Task running = null;
+    private long lastInteractive = System.nanoTime() - INTERACTIVE_GRACE_NANOS;
+    private long nextBulkSlot = System.nanoTime();
+    private long lastReport = System.nanoTime();
+    private long completedSinceReport = 0;
+    private boolean shutdown = false;
+    private boolean workerDied = false;
+    private Thread worker;
+
+    /**
+     * Limits of 0 mean the bulk lane is not throttled in that dimension.
+     */
+    public IndexScheduler(long bulkBytesPerSec, long bulkFilesPerSec) {
+        this.bulkBytesPerSec = bulkBytesPerSec;
+        this.bulkFilesPerSec = bulkFilesPerSec;
+    }
+
+    public void start() {
+        worker = new Thread(this::processTasks, "index-scheduler");
+        worker.start();
+    }
+
+    public void submit(Lane lane, long bytes, Runnable action) {
+
+        Task task = new Task(lane, bytes, action);
+        lock.lock();
+        try {
+            checkWorker();
+            if (shutdown)
+                return;
+
+            if (lane == Lane.INTERACTIVE) {
+                interactive.add(task);
+                lastInteractive = System.nanoTime();
+            } else {
+                while (bulk.size() >= BULK_QUEUE_CAPACITY && !shutdown && !workerDied)
+                    changed.awaitUninterruptibly();
+                checkWorker();
+                if (shutdown)
+                    return;
+                bulk.add(task);
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until every task submitted to the lane so far has been executed.
+     */
+    public void awaitLane(Lane lane) {
+
+        lock.lock();
+        try {
+            ArrayDeque<Task> queue = (lane == Lane.INTERACTIVE) ? interactive : bulk;
+            while (!queue.isEmpty() || (running != null && running.lane == lane)) {
+                checkWorker();
+                changed.awaitUninterruptibly();
+            }
+            checkWorker();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Finishes the running task and the interactive lane, drops bulk tasks that haven't started yet
+     * and stops the worker. Tasks submitted afterwards are ignored.
+     */
+    public void shutdown() {
+
+        lock.lock();
+        try {
+            if (shutdown)
+                return;
+            shutdown = true;
+            if (!bulk.isEmpty())
+                logger.info("dropping {} queued bulk files", bulk.size());
+            bulk.clear();
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        if (worker != null) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        report();
+    }
+
+    private void checkWorker() {
+        if (workerDied)
+            throw new IllegalStateException("The indexing worker has died, no more files can be indexed.");
+    }
+
+    public void report() {
+
+        lock.lock();
+        try {
+            logger.info("queue depth: interactive={}, bulk={}", interactive.size(), bulk.size());
+            reportLane(Lane.INTERACTIVE, interactiveStats);
+            reportLane(Lane.BULK, bulkStats);
+            lastReport = System.nanoTime();
+            completedSinceReport = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void reportLane(Lane lane, LaneStats stats) {
+
+        long avgMillis = (stats.completed == 0) ? 0
+                : TimeUnit.NANOSECONDS.toMillis(stats.totalLatencyNanos / stats.completed);
+        logger.info("{} lane: {} files, {} bytes, avg latency {} ms, max latency {} ms",
+                lane, stats.completed, stats.bytes, avgMillis,
+                TimeUnit.NANOSECONDS.toMillis(stats.maxLatencyNanos));
+    }
+
+    private void processTasks() {
+
+        while (true) {
+            Task task = nextTask();
+            if (task == null)
+                return;
+
+            // an Error (e.g. OutOfMemoryError from a parser) ends the worker, but waiters are woken up
+            // and fail instead of hanging on a task that will never finish
+            boolean died = true;
+            try {
+                task.action.run();
+                died = false;
+            } catch (RuntimeException e) {
+                logger.warn("Indexing task failed.", e);
+                died = false;
+            } finally {
+                lock.lock();
+                try {
+                    if (task.lane == Lane.INTERACTIVE) {
+                        interactiveStats.record(task);
+                        lastInteractive = System.nanoTime();
+                    } else {
+                        bulkStats.record(task);
+                    }
+                    completedSinceReport++;
+                    running = null;
+                    if (died) {
+                        logger.error("The indexing worker has died, {} queued files won't be indexed.",
+                                interactive.size() + bulk.size());
+                        workerDied = true;
+                        interactive.clear();
+                        bulk.clear();
+                    }
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    // Interactive tasks always go first. A bulk task is only handed out when no watcher update
+    // arrived within the grace period and its throttling slot has come; both waits wake up
+    // as soon as a new interactive task is submitted. The throttling slot of the next bulk task
+    // is counted from the start of the current one, so processing time overlaps the delay.
+    // Waiting also wakes up for the periodic report, which matters most while bulk is held back.
+    private Task nextTask() {
+
+        lock.lock();
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                long reportDue = lastReport + REPORT_INTERVAL_NANOS;
+                boolean active = !interactive.isEmpty() || !bulk.isEmpty() || completedSinceReport > 0;
+                if (active && reportDue <= now) {
+                    report();
+                    reportDue = lastReport + REPORT_INTERVAL_NANOS;
+                }
+
+                if (!interactive.isEmpty()) {
+                    running = interactive.poll();
+                    return running;
+                }
+
+                if (!bulk.isEmpty()) {
+                    long resume = Math.max(lastInteractive + INTERACTIVE_GRACE_NANOS, nextBulkSlot);
+                    if (resume <= now) {
+                        running = bulk.poll();
+                        nextBulkSlot = Math.max(nextBulkSlot, now) + bulkCostNanos(running.bytes);
+                        changed.signalAll();
+                        return running;
+                    }
+                    changed.awaitNanos(Math.min(resume, reportDue) - now);
+                } else if (shutdown) {
+                    return null;
+                } else if (completedSinceReport > 0) {
+                    changed.awaitNanos(reportDue - now);
+                } else {
+                    changed.await();
+                }
+            }
+        } catch (InterruptedException e) {
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long bulkCostNanos(long bytes) {
+
+        long byBytes = (bulkBytesPerSec > 0) ? TimeUnit.SECONDS.toNanos(bytes) / bulkBytesPerSec : 0;
+        long byFiles = (bulkFilesPerSec > 0) ? TimeUnit.SECONDS.toNanos(1) / bulkFilesPerSec : 0;
+        return Math.max(byBytes, byFiles);
+    }
+}
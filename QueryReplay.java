@@ -0,0 +1,296 @@
+package pl.edu.mimuw.mm408932;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.store.FSDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replays a query log against the index through SearchFiles.searchQuery and reports
+ * throughput and latency percentiles per query mode.
+ *
+ * Every line of the log is "mode lang text", e.g. "phrase en hello world".
+ * Empty lines and lines starting with '#' are skipped.
+ *
+ * Before the timed passes the log is replayed --warmup times (1 by default) without a report,
+ * so JIT compilation and a cold page cache don't land only in the first timed pass.
+ *
+ * Usage: SearchFiles --replay &lt;log&gt; [--threads N] [--qps Q] [--repeat R] [--limit N]
+ *        [--details on|off|both] [--warmup W]
+ */
+class QueryReplay {
+
+    private static Logger logger = LoggerFactory.getLogger(QueryReplay.class);
+
+    // latency markers for queries that have no real latency
+    private static final long NOT_RUN = -1;
+    private static final long FAILED = -2;
+
+    // PrintStream locks itself on every println, so each client gets its own to avoid
+    // contention that the interactive path doesn't have
+    private static PrintStream discardingStream() {
+        return new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {}
+
+            @Override
+            public void write(byte[] b, int off, int len) {}
+        });
+    }
+
+    private static class Entry {
+        final String mode;
+        final String lang;
+        final String text;
+
+        Entry(String mode, String lang, String text) {
+            this.mode = mode;
+            this.lang = lang;
+            this.text = text;
+        }
+    }
+
+    private QueryReplay() {}
+
+    static void run(String[] args) {
+
+        String logPath = null;
+        int threads = 1;
+        double qps = 0;
+        int repeat = 1;
+        int limit = Integer.MAX_VALUE;
+        String details = "both";
+        int warmup = 1;
+
+        for (int i = 1; i < args.length; i++) {
+            if ("--threads".equals(args[i])) {
+                threads = Integer.parseInt(args[++i]);
+            } else if ("--qps".equals(args[i])) {
+                qps = Double.parseDouble(args[++i]);
+            } else if ("--repeat".equals(args[i])) {
+                repeat = Integer.parseInt(args[++i]);
+            } else if ("--limit".equals(args[i])) {
+                limit = Integer.parseInt(args[++i]);
+                if (limit == 0)
+                    limit = Integer.MAX_VALUE;
+            } else if ("--details".equals(args[i])) {
+                details = args[++i];
+            } else if ("--warmup".equals(args[i])) {
+                warmup = Integer.parseInt(args[++i]);
+            } else if (logPath == null) {
+                logPath = args[i];
+            }
+        }
+
+        if (threads <= 0 || repeat <= 0 || qps < 0 || warmup < 0) {
+            System.out.println("--threads and --repeat must be positive, --qps and --warmup cannot be negative.");
+            return;
+        }
+
+        if (logPath == null) {
+            System.out.println("Usage: SearchFiles --replay <log> [--threads N] [--qps Q] [--repeat R]" +
+                    " [--limit N] [--details on|off|both] [--warmup W]");
+            return;
+        }
+
+        List<Entry> entries;
+        try {
+            entries = readLog(logPath);
+        } catch (IOException e) {
+            System.out.println("Cannot read the query log: " + logPath);
+            return;
+        }
+        if (entries.isEmpty()) {
+            System.out.println("The query log is empty.");
+            return;
+        }
+
+        String index = System.getProperty("user.home") + "/.index";
+        try (IndexReader reader = DirectoryReader.open(FSDirectory.open(Paths.get(index)))) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+
+            System.out.println("Replaying " + entries.size() + " queries x" + repeat + " from " + threads +
+                    " threads" + (qps > 0 ? " at " + qps + " qps" : "") + ".");
+
+            if (warmup > 0) {
+                System.out.println("Warming up...");
+                if (!details.equals("on"))
+                    replay(searcher, entries, threads, 0, warmup, limit, false, false);
+                if (!details.equals("off"))
+                    replay(searcher, entries, threads, 0, warmup, limit, true, false);
+            }
+
+            if (!details.equals("on"))
+                replay(searcher, entries, threads, qps, repeat, limit, false, true);
+            if (!details.equals("off"))
+                replay(searcher, entries, threads, qps, repeat, limit, true, true);
+        } catch (IOException e) {
+            logger.error("Cannot open the Index.");
+        }
+    }
+
+    private static List<Entry> readLog(String logPath) throws IOException {
+
+        List<Entry> entries = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(logPath), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.charAt(0) == '#')
+                continue;
+
+            String[] parts = line.split("\\s+", 3);
+            if (parts.length < 3 || !(parts[0].equals("term") || parts[0].equals("phrase")
+                    || parts[0].equals("fuzzy")) || !(parts[1].equals("en") || parts[1].equals("pl"))) {
+                System.out.println("Skipping malformed query log line: " + line);
+                continue;
+            }
+            entries.add(new Entry(parts[0], parts[1], parts[2]));
+        }
+        return entries;
+    }
+
+    private static void replay(IndexSearcher searcher, List<Entry> entries, int threads, double qps,
+                               int repeat, int limit, boolean details, boolean report) {
+
+        int total = entries.size() * repeat;
+        long[] latencies = new long[total];
+        Arrays.fill(latencies, NOT_RUN);
+        AtomicInteger next = new AtomicInteger();
+        long start = System.nanoTime();
+        long interval = qps > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / qps) : 0;
+
+        Runnable client = () -> {
+            PrintStream out = discardingStream();
+            int i;
+            while ((i = next.getAndIncrement()) < total) {
+                // with a target rate each query has a fixed start time, and latency counts from it,
+                // so queueing behind slow queries shows up in the tail
+                long scheduled = start + i * interval;
+                long now = System.nanoTime();
+                if (interval > 0 && scheduled > now) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(scheduled - now);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                long begin = interval > 0 ? scheduled : System.nanoTime();
+
+                Entry entry = entries.get(i % entries.size());
+                boolean ok;
+                try {
+                    ok = runQuery(searcher, entry, limit, details, out);
+                } catch (RuntimeException e) {
+                    logger.warn("Query failed: " + entry.text, e);
+                    ok = false;
+                }
+                // failed queries are counted separately, their latency would skew the results
+                latencies[i] = ok ? System.nanoTime() - begin : FAILED;
+            }
+        };
+
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(client, "replay-client-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (!report)
+            return;
+
+        Map<String, List<Long>> byMode = new TreeMap<>();
+        Map<String, Integer> errorsByMode = new TreeMap<>();
+        Map<String, Integer> notRunByMode = new TreeMap<>();
+        int succeeded = 0;
+        int failed = 0;
+        for (int i = 0; i < total; i++) {
+            String mode = entries.get(i % entries.size()).mode;
+            List<Long> samples = byMode.computeIfAbsent(mode, m -> new ArrayList<>());
+            if (latencies[i] == FAILED) {
+                errorsByMode.merge(mode, 1, Integer::sum);
+                failed++;
+            } else if (latencies[i] == NOT_RUN) {
+                notRunByMode.merge(mode, 1, Integer::sum);
+            } else {
+                samples.add(latencies[i]);
+                succeeded++;
+            }
+        }
+
+        double seconds = elapsed / (double) TimeUnit.SECONDS.toNanos(1);
+        System.out.println(String.format("\nhighlighting %s: %d queries (%d failed, %d not run) in %.2f s, %.1f qps",
+                details ? "on" : "off", total, failed, total - succeeded - failed, seconds, succeeded / seconds));
+        System.out.println(String.format("%-8s %8s %8s %8s %10s %10s %10s %10s",
+                "mode", "count", "errors", "not run", "p50 ms", "p95 ms", "p99 ms", "max ms"));
+        for (Map.Entry<String, List<Long>> mode : byMode.entrySet()) {
+            List<Long> sorted = mode.getValue();
+            int errors = errorsByMode.getOrDefault(mode.getKey(), 0);
+            int notRun = notRunByMode.getOrDefault(mode.getKey(), 0);
+            if (sorted.isEmpty()) {
+                System.out.println(String.format("%-8s %8d %8d %8d %10s %10s %10s %10s",
+                        mode.getKey(), 0, errors, notRun, "-", "-", "-", "-"));
+                continue;
+            }
+            Collections.sort(sorted);
+            System.out.println(String.format("%-8s %8d %8d %8d %10.2f %10.2f %10.2f %10.2f",
+                    mode.getKey(), sorted.size(), errors, notRun, percentile(sorted, 50), percentile(sorted, 95),
+                    percentile(sorted, 99), millis(sorted.get(sorted.size() - 1))));
+        }
+    }
+
+    // returns false if the query couldn't be parsed or searched
+    private static boolean runQuery(IndexSearcher searcher, Entry entry, int limit, boolean details,
+                                    PrintStream out) {
+
+        String field = SearchFiles.fieldFor(entry.lang);
+        Analyzer analyzer = SearchFiles.analyzerFor(entry.lang);
+
+        Query query;
+        try {
+            query = SearchFiles.buildQuery(entry.mode, field, analyzer, entry.text);
+        } catch (ParseException e) {
+            logger.warn("Cannot parse the query: {}", entry.text);
+            return false;
+        }
+
+        return SearchFiles.searchQuery(searcher, query, limit, null, analyzer, details, false, field, out);
+    }
+
+    // nearest-rank percentile of an ascending list
+    private static double percentile(List<Long> sorted, int p) {
+        int rank = (int) Math.ceil(p / 100.0 * sorted.size());
+        return millis(sorted.get(Math.max(rank, 1) - 1));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
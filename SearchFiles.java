@@ -1,15 +1,25 @@
 package pl.edu.mimuw.mm408932;
 
 
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.List;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.en.EnglishAnalyzer;
 import org.apache.lucene.analysis.pl.PolishAnalyzer;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.LongPoint;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedDocValues;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.queryparser.classic.ParseException;
@@ -36,6 +46,11 @@ public class SearchFiles {
 
     public static void main(String[] args) {
 
+        if (args.length > 0 && "--replay".equals(args[0])) {
+            QueryReplay.run(args);
+            return;
+        }
+
         try (Terminal terminal = TerminalBuilder.builder()
                 .jna(false)
                 .jansi(true)
@@ -48,15 +63,14 @@ public class SearchFiles {
             String index = System.getProperty("user.home") + "/.index";
             IndexReader reader = DirectoryReader.open(FSDirectory.open(Paths.get(index)));
             IndexSearcher searcher = new IndexSearcher(reader);
-            Analyzer analyzer;
 
-            boolean term = true;
-            boolean phrase = false;
-            boolean fuzzy = false;
+            String mode = "term";
             String lang = "en";
             boolean details = false;
             int limit = Integer.MAX_VALUE;
             boolean color = false;
+            Sort sort = null;
+            Query filter = null;
 
             while (true) {
                 String line = lineReader.readLine("> ");
@@ -73,18 +87,28 @@ public class SearchFiles {
                             lang = "pl";
                         else if (commandType.equals("lang en"))
                             lang = "en";
-                    } else if (commandType.equals("term")) {
-                        term = true;
-                        phrase = false;
-                        fuzzy = false;
-                    } else if (commandType.equals("phrase")) {
-                        term = false;
-                        phrase = true;
-                        fuzzy = false;
-                    } else if (commandType.equals("fuzzy")) {
-                        term = false;
-                        phrase = false;
-                        fuzzy = true;
+                    } else if (commandType.equals("term") || commandType.equals("phrase")
+                            || commandType.equals("fuzzy")) {
+                        mode = commandType;
+                    } else if (commandType.startsWith("sort")) {
+                        if (commandType.equals("sort mtime"))
+                            sort = new Sort(new SortField("mtime", SortField.Type.LONG, true));
+                        else if (commandType.equals("sort size"))
+                            sort = new Sort(new SortField("size", SortField.Type.LONG, true));
+                        else if (commandType.equals("sort score"))
+                            sort = null;
+                    } else if (commandType.startsWith("filter")) {
+                        String spec = commandType.substring(6).trim();
+                        if (spec.isEmpty()) {
+                            filter = null;
+                            System.out.println("The filter is cleared.");
+                        } else {
+                            Query parsedFilter = parseFilter(spec);
+                            if (parsedFilter != null)
+                                filter = parsedFilter;
+                            else
+                                System.out.println("No valid filter given, the previous filter is kept.");
+                        }
                     } else if (commandType.substring(0, 5).equals("limit")) {
                         String number = commandType.substring(5);
                         limit = Integer.parseInt(number);
@@ -104,36 +128,22 @@ public class SearchFiles {
                     continue;
                 }
 
-                String field = null;
-                if (lang.equals("pl")) {
-                    analyzer = new PolishAnalyzer();
-                    field = "PolishText";
-                }
-                else {
-                    analyzer = new EnglishAnalyzer();
-                    field = "EnglishText";
-                }
-                QueryParser parserContent = new QueryParser(field, analyzer);
-
-                Query queryContent = null;
-                if (term) {
-                    queryContent = new TermQuery(new Term(field, line));
-                } else if (phrase) {
-                    String[] terms = line.split(" ");
-                    queryContent = new PhraseQuery(field, terms);
-                } else if (fuzzy) {
-                    queryContent = new FuzzyQuery(new Term(field, line));
-                }
+                String field = fieldFor(lang);
+                Analyzer analyzer = analyzerFor(lang);
 
-                if (queryContent != null) {
-                    Query parsedQuery = null;
-                    try {
-                        parsedQuery = parserContent.parse(queryContent.toString(field));
-                    } catch (ParseException e) {
-                        System.out.println("Cannot parse the query, so it won't be searched.");
-                    }
-                    searchQuery(searcher, parsedQuery, limit, analyzer, details, color, field);
+                Query parsedQuery = null;
+                try {
+                    parsedQuery = buildQuery(mode, field, analyzer, line);
+                } catch (ParseException e) {
+                    System.out.println("Cannot parse the query, so it won't be searched.");
+                }
+                if (parsedQuery != null && filter != null) {
+                    parsedQuery = new BooleanQuery.Builder()
+                            .add(parsedQuery, BooleanClause.Occur.MUST)
+                            .add(filter, BooleanClause.Occur.FILTER)
+                            .build();
                 }
+                searchQuery(searcher, parsedQuery, limit, sort, analyzer, details, color, field, System.out);
             }
             reader.close();
         } catch (IOException e) {
@@ -141,29 +151,147 @@ public class SearchFiles {
         }
     }
 
-    private static void searchQuery(IndexSearcher searcher, Query query, int limit, Analyzer analyzer,
-                                    boolean details, boolean color, String field) {
+    static String fieldFor(String lang) {
+        return lang.equals("pl") ? "PolishText" : "EnglishText";
+    }
+
+    static Analyzer analyzerFor(String lang) {
+        return lang.equals("pl") ? new PolishAnalyzer() : new EnglishAnalyzer();
+    }
+
+    // mode is one of "term", "phrase" or "fuzzy", any other mode gives null
+    static Query buildQuery(String mode, String field, Analyzer analyzer, String text) throws ParseException {
+
+        QueryParser parserContent = new QueryParser(field, analyzer);
+
+        Query queryContent = null;
+        if (mode.equals("term")) {
+            queryContent = new TermQuery(new Term(field, text));
+        } else if (mode.equals("phrase")) {
+            String[] terms = text.split(" ");
+            queryContent = new PhraseQuery(field, terms);
+        } else if (mode.equals("fuzzy")) {
+            queryContent = new FuzzyQuery(new Term(field, text));
+        }
+
+        if (queryContent == null)
+            return null;
+        return parserContent.parse(queryContent.toString(field));
+    }
+
+    // "ext=pdf dir=/home/user/docs lang=pl size>1000 mtime>2019-06-01", sizes are in bytes and dates
+    // are local days; returns null if no part of the spec is valid
+    private static Query parseFilter(String spec) {
+
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        boolean empty = true;
+
+        for (String part : spec.split("\\s+")) {
+            if (part.startsWith("ext=")) {
+                String ext = part.substring(4).toLowerCase();
+                if (ext.startsWith("."))
+                    ext = ext.substring(1);
+                builder.add(new TermQuery(new Term("ext", ext)), BooleanClause.Occur.FILTER);
+                empty = false;
+            } else if (part.startsWith("dir=") && part.length() > 4) {
+                // with the trailing separator dir=/home/a doesn't match /home/abc
+                String dir = Paths.get(part.substring(4)).normalize().toString();
+                if (!dir.endsWith(File.separator))
+                    dir += File.separator;
+                builder.add(new PrefixQuery(new Term("path", dir)), BooleanClause.Occur.FILTER);
+                empty = false;
+            } else if (part.equals("lang=en") || part.equals("lang=pl")) {
+                builder.add(new TermQuery(new Term("lang", part.substring(5))), BooleanClause.Occur.FILTER);
+                empty = false;
+            } else {
+                Query range = parseRangeFilter(part);
+                if (range != null) {
+                    builder.add(range, BooleanClause.Occur.FILTER);
+                    empty = false;
+                } else {
+                    System.out.println("Unknown filter: " + part);
+                }
+            }
+        }
+
+        return empty ? null : new ConstantScoreQuery(builder.build());
+    }
+
+    // "size>N", "size<N", "mtime>yyyy-mm-dd" or "mtime<yyyy-mm-dd" as a point range, null if invalid
+    private static Query parseRangeFilter(String part) {
+
+        String field;
+        if (part.startsWith("size"))
+            field = "size";
+        else if (part.startsWith("mtime"))
+            field = "mtime";
+        else
+            return null;
+
+        if (part.length() <= field.length() + 1)
+            return null;
+        char op = part.charAt(field.length());
+        String value = part.substring(field.length() + 1);
+
+        long bound;
+        try {
+            if (field.equals("size"))
+                bound = Long.parseLong(value);
+            else
+                bound = LocalDate.parse(value).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (NumberFormatException | DateTimeParseException e) {
+            return null;
+        }
+
+        // a file modified during the given day counts as modified after it
+        long exclusive = field.equals("size") ? 1 : 0;
+        if (op == '>')
+            return LongPoint.newRangeQuery(field, bound + exclusive, Long.MAX_VALUE);
+        else if (op == '<')
+            return LongPoint.newRangeQuery(field, Long.MIN_VALUE, bound - 1);
+        return null;
+    }
+
+    private static String pathOf(IndexSearcher searcher, int docId) throws IOException {
+
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(docId, leaves));
+        SortedDocValues paths = leaf.reader().getSortedDocValues("path");
+
+        if (paths != null && paths.advanceExact(docId - leaf.docBase))
+            return paths.binaryValue().utf8ToString();
+
+        // documents indexed before the path doc values were added
+        Document doc = searcher.doc(docId);
+        return doc.get("path");
+    }
+
+    // returns false if the query couldn't be searched
+    static boolean searchQuery(IndexSearcher searcher, Query query, int limit, Sort sort, Analyzer analyzer,
+                               boolean details, boolean color, String field, PrintStream out) {
+
+        if (query == null)
+            return false;
 
         try {
-            TopDocs results = searcher.search(query, limit);
+            TopDocs results = (sort == null) ? searcher.search(query, limit) : searcher.search(query, limit, sort);
             ScoreDoc[] hits = results.scoreDocs;
 
             int numTotalHits = Math.toIntExact(results.totalHits.value);
-            System.out.println("File count: " + numTotalHits);
+            out.println("File count: " + numTotalHits);
 
 
-            for (int i = 0; i < numTotalHits; i++) {
+            for (int i = 0; i < hits.length; i++) {
 
-                Document doc = searcher.doc(hits[i].doc);
-                String path = doc.get("path");
+                String path = pathOf(searcher, hits[i].doc);
 
                 if (path != null) {
-                    System.out.println(new AttributedStringBuilder().append("")
+                    out.println(new AttributedStringBuilder().append("")
                             .style(AttributedStyle.DEFAULT.bold())
                             .append(path)
                             .toAnsi());
                 } else {
-                    System.out.println("No path for this document");
+                    out.println("No path for this document");
                 }
 
                 if (details) {
@@ -179,11 +307,13 @@ public class SearchFiles {
                     }
                     String[] fragments = highlighter.highlight(field, query, results, 5);
 
-                    System.out.println(fragments[i]);
+                    out.println(fragments[i]);
                 }
             }
         } catch (IOException e) {
-            System.out.println("Cannot search the query in the Index.");
+            out.println("Cannot search the query in the Index.");
+            return false;
         }
+        return true;
     }
 }
@@ -6,6 +6,7 @@ import static java.nio.file.LinkOption.*;
 import java.nio.file.attribute.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.lucene.index.IndexWriter;
 import org.slf4j.Logger;
@@ -17,13 +18,21 @@ public class WatchDir {
 
     private final WatchService watcher;
     private final Map<WatchKey, Path> keys;
+    private final IndexScheduler scheduler;
+    private Thread thread;
+
+    // writer of the bulk commands running in this process; without it every event opens its own,
+    // so the Index isn't locked between events
+    private IndexWriter sharedWriter;
+    private final Object writerLock = new Object();
 
     @SuppressWarnings("unchecked")
     private  static <T> WatchEvent<T> cast(WatchEvent<?> event) {
         return (WatchEvent<T>) event;
     }
 
-    private void register(Path dir) throws IOException {
+    // also called from the main thread for directories added while watching
+    private synchronized void register(Path dir) throws IOException {
         WatchKey key = dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
 
         Path prev = keys.get(key);
@@ -55,7 +64,7 @@ public class WatchDir {
             WatchKey key;
             try {
                 key = watcher.take();
-            } catch (InterruptedException x) {
+            } catch (InterruptedException | ClosedWatchServiceException x) {
                 return;
             }
 
@@ -85,24 +94,33 @@ public class WatchDir {
                         if (Files.isDirectory(child, NOFOLLOW_LINKS)) {
                             registerAll(child);
                         }
-                    } catch (IOException x) {
+                    } catch (IOException | ClosedWatchServiceException x) {
                         // ignore to keep sample readable
                     }
                 }
 
-                try (IndexWriter writer = IndexFiles.createWriter()) {
-
-                    if (kind == ENTRY_CREATE) {
-                        IndexFiles.indexDirectory(writer, child, false);
-                    } else if (kind == ENTRY_DELETE) {
-                        System.out.println("------------------" + child.toString());
-                        IndexFiles.deleteDocs(writer, child, true);
-                    } else if (kind == ENTRY_MODIFY) {
-                        IndexFiles.updateDoc(writer, child);
+                synchronized (writerLock) {
+                    try {
+                        IndexWriter writer = (sharedWriter != null) ? sharedWriter : IndexFiles.createWriter();
+                        try {
+                            if (kind == ENTRY_CREATE) {
+                                IndexFiles.indexDirectory(scheduler, writer, child, false,
+                                        IndexScheduler.Lane.INTERACTIVE);
+                            } else if (kind == ENTRY_DELETE) {
+                                System.out.println("------------------" + child.toString());
+                                IndexFiles.deleteDocs(writer, child, true);
+                            } else if (kind == ENTRY_MODIFY) {
+                                IndexFiles.updateDoc(scheduler, writer, child);
+                            }
+                            writer.commit();
+                        } finally {
+                            if (writer != sharedWriter)
+                                writer.close();
+                        }
+                    }
+                    catch (IOException e) {
+                        logger.warn("Cannot make changes after creating / updating / deleting.", e);
                     }
-                }
-                catch (IOException e) {
-                    logger.warn("Cannot make changes after creating / updating / deleting.", e);
                 }
             }
 
@@ -119,28 +137,76 @@ public class WatchDir {
         }
     }
 
-    private WatchDir(ArrayList<String> indexedDirs) throws IOException {
+    private WatchDir(ArrayList<String> indexedDirs, IndexScheduler scheduler, IndexWriter sharedWriter)
+            throws IOException {
 
         this.watcher = FileSystems.getDefault()
                 .newWatchService();
-        this.keys = new HashMap<WatchKey, Path>();
+        this.keys = new ConcurrentHashMap<WatchKey, Path>();
+        this.scheduler = scheduler;
+        this.sharedWriter = sharedWriter;
 
 
         for (String dir : indexedDirs) {
-            Path path = Paths.get(dir);
-            logger.info("Scanning {} ...", dir);
-            try {
-                registerAll(path);
-            }
-            catch (IOException e) {
-                logger.warn("Cannot register directory: " + path +
-                        "Watcher won't notice any changes in it and its subdirectories");
-            }
-            logger.info("Done.");
+            watchDirectory(Paths.get(dir));
+        }
+    }
+
+    public void watchDirectory(Path path) {
+
+        logger.info("Scanning {} ...", path);
+        try {
+            registerAll(path);
+        }
+        catch (IOException e) {
+            logger.warn("Cannot register directory: " + path +
+                    "Watcher won't notice any changes in it and its subdirectories");
+        }
+        catch (ClosedWatchServiceException e) {
+            // the watcher has been stopped in the meantime
+            return;
+        }
+        logger.info("Done.");
+    }
+
+    /**
+     * Stops using the shared writer; returns once the event being handled, if any, is done with it.
+     */
+    public void releaseWriter() {
+
+        synchronized (writerLock) {
+            sharedWriter = null;
+        }
+    }
+
+    /**
+     * Stops watching and waits until the event being handled, if any, is finished.
+     */
+    public void stop() {
+
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            logger.warn("Cannot close the watcher.", e);
+        }
+        awaitTermination();
+    }
+
+    public void awaitTermination() {
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
-    public static void watchIndex(ArrayList<String> indexedDirs) {
+    /**
+     * Starts watching the directories in a separate thread, returns null if the watcher cannot be created.
+     * sharedWriter may be null, then each event opens and closes its own writer.
+     */
+    public static WatchDir watchIndex(ArrayList<String> indexedDirs, IndexScheduler scheduler,
+                                      IndexWriter sharedWriter) {
 
         Runtime.getRuntime()
                 .addShutdownHook(new Thread() {
@@ -152,13 +218,16 @@ public class WatchDir {
 
         WatchDir watcher = null;
         try {
-            watcher = new WatchDir(indexedDirs);
+            watcher = new WatchDir(indexedDirs, scheduler, sharedWriter);
         }
         catch (IOException e) {
             logger.error("Cannot create watcher.");
         }
         System.out.println("I've finished registering directories.\n\nI'm observing directories in Index and waiting for changes...");
-        if (watcher != null)
-            watcher.processEvents();
+        if (watcher != null) {
+            watcher.thread = new Thread(watcher::processEvents, "index-watcher");
+            watcher.thread.start();
+        }
+        return watcher;
     }
 }